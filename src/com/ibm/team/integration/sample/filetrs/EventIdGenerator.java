@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Licensed Materials - Property of IBM
+ * (c) Copyright IBM Corporation 2014. All Rights Reserved.
+ * Note to U.S. Government Users Restricted Rights: Use,
+ * duplication or disclosure restricted by GSA ADP Schedule
+ * Contract with IBM Corp.
+ *******************************************************************************/
+package com.ibm.team.integration.sample.filetrs;
+
+import java.util.Random;
+
+/**
+ * Monotonic, time-ordered event id generator (ULID layout: 48 bits of ms timestamp
+ * followed by 80 bits of randomness, in Crockford base32).
+ * Ids generated within the same millisecond increment the random part, so ids
+ * always sort in generation order. Avoids the SecureRandom cost of UUID.randomUUID().
+ */
+class EventIdGenerator {
+
+	private static final char[] ENCODING = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray(); // Crockford base32
+	private static final long MASK_40 = (1L << 40) - 1;
+
+	private final Random random = new Random();
+	private long lastTime = -1;
+	private long randomHi; // upper 16 bits of randomness
+	private long randomLo; // lower 64 bits of randomness
+
+	private static void encode(char[] chars, int offset, int length, long value) {
+		for (int i = offset + length - 1; i >= offset; i--) {
+			chars[i] = ENCODING[(int) (value & 0x1F)];
+			value >>>= 5;
+		}
+	}
+
+	public synchronized String next() {
+		long now = System.currentTimeMillis();
+		if (now > this.lastTime) {
+			this.lastTime = now;
+			this.randomHi = this.random.nextInt() & 0xFFFF;
+			this.randomLo = this.random.nextLong();
+		} else { // same ms (or clock moved back): keep increasing
+			this.randomLo++;
+			if (this.randomLo == 0) { // carry
+				this.randomHi = (this.randomHi + 1) & 0xFFFF;
+				if (this.randomHi == 0) this.lastTime++; // randomness exhausted, borrow next ms
+			}
+		}
+		char[] chars = new char[26];
+		encode(chars, 0, 10, this.lastTime);
+		encode(chars, 10, 8, (this.randomHi << 24) | (this.randomLo >>> 40));
+		encode(chars, 18, 8, this.randomLo & MASK_40);
+		return new String(chars);
+	}
+}
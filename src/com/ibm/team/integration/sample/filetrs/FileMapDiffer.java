@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Licensed Materials - Property of IBM
+ * (c) Copyright IBM Corporation 2014. All Rights Reserved.
+ * Note to U.S. Government Users Restricted Rights: Use,
+ * duplication or disclosure restricted by GSA ADP Schedule
+ * Contract with IBM Corp.
+ *******************************************************************************/
+package com.ibm.team.integration.sample.filetrs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.ibm.team.integration.sample.filetrs.TrackedFileSet.EventType;
+
+/**
+ * Computes the changes between two file maps (resource name to file ETag).
+ * Both maps are split in the same fixed hash partitions, so partition p of the old map
+ * only needs diffing against partition p of the new map. Large maps have their partitions
+ * diffed in parallel, each into its own lists. Whatever the thread count, changes come out
+ * in the same order: removals/modifications of all partitions, then additions of all
+ * partitions, each in partition order.
+ */
+class FileMapDiffer {
+
+	// Detected change on a resource, turned into an event by the caller
+	static class Change {
+		final EventType type;
+		final String resourceName;
+
+		Change(EventType type, String resourceName) {
+			this.type = type;
+			this.resourceName = resourceName;
+		}
+	}
+
+	// Changes found in one partition
+	static class PartitionChanges {
+		final List<Change> removedOrModified = new ArrayList<Change>();
+		final List<Change> added = new ArrayList<Change>();
+	}
+
+	static final int PARALLEL_THRESHOLD = 50000; // smaller maps are diffed on the calling thread
+
+	private final int threadCount = Math.min(Runtime.getRuntime().availableProcessors(), PartitionedFileMap.PARTITION_COUNT);
+	private ExecutorService executor;
+
+	private static PartitionChanges diffPartition(Map<String,String> oldfiles, Map<String,String> newfiles) {
+		PartitionChanges changes = new PartitionChanges();
+		int removed = 0;
+		for (Map.Entry<String,String> oldentry : oldfiles.entrySet()) {
+			String newfileEtag = newfiles.get(oldentry.getKey());
+			if (newfileEtag == null) {
+				changes.removedOrModified.add(new Change(EventType.REMOVED, oldentry.getKey()));
+				removed++;
+			} else if (!oldentry.getValue().equals(newfileEtag)) {
+				changes.removedOrModified.add(new Change(EventType.MODIFIED, oldentry.getKey()));
+			}
+		}
+		if (newfiles.size() > oldfiles.size() - removed) { // some keys are new
+			for (String newfile : newfiles.keySet()) {
+				if (!oldfiles.containsKey(newfile)) {
+					changes.added.add(new Change(EventType.ADDED, newfile));
+				}
+			}
+		}
+		return changes;
+	}
+
+	public List<Change> diff(final PartitionedFileMap oldfiles, final PartitionedFileMap newfiles) throws ExecutionException, InterruptedException {
+		PartitionChanges[] partitionChanges = new PartitionChanges[PartitionedFileMap.PARTITION_COUNT];
+		if (this.threadCount <= 1 || oldfiles.size() + newfiles.size() < PARALLEL_THRESHOLD) {
+			for (int p = 0; p < partitionChanges.length; p++) {
+				partitionChanges[p] = diffPartition(oldfiles.getPartition(p), newfiles.getPartition(p));
+			}
+		} else {
+			List<Future<PartitionChanges>> results = new ArrayList<Future<PartitionChanges>>(partitionChanges.length);
+			ExecutorService pool = getExecutor();
+			for (int p = 0; p < partitionChanges.length; p++) {
+				final int partition = p;
+				results.add(pool.submit(new Callable<PartitionChanges>() {
+					@Override
+					public PartitionChanges call() {
+						return diffPartition(oldfiles.getPartition(partition), newfiles.getPartition(partition));
+					}
+				}));
+			}
+			for (int p = 0; p < partitionChanges.length; p++) {
+				partitionChanges[p] = results.get(p).get();
+			}
+		}
+		List<Change> changes = new ArrayList<Change>();
+		for (PartitionChanges partition : partitionChanges) {
+			changes.addAll(partition.removedOrModified);
+		}
+		for (PartitionChanges partition : partitionChanges) {
+			changes.addAll(partition.added);
+		}
+		return changes;
+	}
+
+	public synchronized void shutdown() {
+		if (this.executor != null) {
+			this.executor.shutdown();
+			this.executor = null;
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (this.executor == null) {
+			this.executor = Executors.newFixedThreadPool(this.threadCount, new ThreadFactory() {
+				private int count = 0;
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "filesystem differ #" + (this.count++));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return this.executor;
+	}
+}
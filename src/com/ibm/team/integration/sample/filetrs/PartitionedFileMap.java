@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Licensed Materials - Property of IBM
+ * (c) Copyright IBM Corporation 2014. All Rights Reserved.
+ * Note to U.S. Government Users Restricted Rights: Use,
+ * duplication or disclosure restricted by GSA ADP Schedule
+ * Contract with IBM Corp.
+ *******************************************************************************/
+package com.ibm.team.integration.sample.filetrs;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * File map (resource name to file ETag) kept as a fixed number of sub-maps, by key hash.
+ * The partition of a key does not depend on the host, so two file maps can be diffed
+ * partition against partition, and in the same order everywhere.
+ */
+class PartitionedFileMap extends AbstractMap<String,String> {
+
+	static final int PARTITION_COUNT = 16;
+
+	private final HashMap<String,String>[] partitions;
+
+	static int partitionOf(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return h & (PARTITION_COUNT-1);
+	}
+
+	PartitionedFileMap() {
+		this(16);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	PartitionedFileMap(int expectedSize) {
+		this.partitions = new HashMap[PARTITION_COUNT];
+		int partitionSize = Math.max(16, (int) (expectedSize / PARTITION_COUNT / 0.75f) + 1);
+		for (int p = 0; p < PARTITION_COUNT; p++) {
+			this.partitions[p] = new HashMap<String,String>(partitionSize);
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (HashMap<String,String> partition : this.partitions) {
+			partition.clear();
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key != null && this.partitions[partitionOf(key)].containsKey(key);
+	}
+
+	@Override
+	public Set<Map.Entry<String,String>> entrySet() {
+		return new AbstractSet<Map.Entry<String,String>>() {
+			@Override
+			public Iterator<Map.Entry<String,String>> iterator() {
+				return new Iterator<Map.Entry<String,String>>() {
+					private int partition = 0;
+					private Iterator<Map.Entry<String,String>> current = PartitionedFileMap.this.partitions[0].entrySet().iterator();
+
+					@Override
+					public boolean hasNext() {
+						while (!this.current.hasNext()) {
+							if (++this.partition == PARTITION_COUNT) return false;
+							this.current = PartitionedFileMap.this.partitions[this.partition].entrySet().iterator();
+						}
+						return true;
+					}
+
+					@Override
+					public Map.Entry<String,String> next() {
+						if (!hasNext()) throw new NoSuchElementException();
+						return this.current.next();
+					}
+
+					@Override
+					public void remove() {
+						this.current.remove();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return PartitionedFileMap.this.size();
+			}
+		};
+	}
+
+	@Override
+	public String get(Object key) {
+		if (key == null) return null;
+		return this.partitions[partitionOf(key)].get(key);
+	}
+
+	// partition p, for diffing without walking the whole map
+	Map<String,String> getPartition(int p) {
+		return this.partitions[p];
+	}
+
+	@Override
+	public String put(String key, String value) {
+		return this.partitions[partitionOf(key)].put(key, value);
+	}
+
+	@Override
+	public String remove(Object key) {
+		if (key == null) return null;
+		return this.partitions[partitionOf(key)].remove(key);
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (HashMap<String,String> partition : this.partitions) {
+			size += partition.size();
+		}
+		return size;
+	}
+}
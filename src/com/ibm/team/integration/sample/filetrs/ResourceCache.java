@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Licensed Materials - Property of IBM
+ * (c) Copyright IBM Corporation 2014. All Rights Reserved.
+ * Note to U.S. Government Users Restricted Rights: Use,
+ * duplication or disclosure restricted by GSA ADP Schedule
+ * Contract with IBM Corp.
+ *******************************************************************************/
+package com.ibm.team.integration.sample.filetrs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of small resource contents, held off-heap in a single direct slab
+ * sized to the memory budget and split into fixed-size blocks.
+ * Entries are keyed like the reconciler file map (e.g. "resources/a/b.ttl").
+ * Entries returned by get() and load() are pinned: their blocks are not reused until release().
+ */
+class ResourceCache {
+
+	// Cached resource content (blocks of the slab) along with the ETag it was loaded for
+	static class Entry {
+		final int[] blocks;
+		final int length;
+		final String eTag;
+		private int pins = 0; // readers using the blocks, guarded by the cache
+		private boolean mapped = false; // reachable from the cache, guarded by the cache
+
+		Entry(int[] blocks, int length, String eTag) {
+			this.blocks = blocks;
+			this.length = length;
+			this.eTag = eTag;
+		}
+	}
+
+	static final int BLOCK_SIZE = 4*1024; // 4KB
+	static final long DEFAULT_MEMORY_BUDGET = 16*1024*1024; // 16MB
+	static final int DEFAULT_MAX_ENTRY_SIZE = 64*1024; // 64KB
+
+	private final long memoryBudget;
+	private final int maxEntrySize;
+	private final ByteBuffer slab;
+	private final int[] freeBlocks;
+	private int freeCount;
+	private long version = 0; // bumped on each invalidation, guards against caching stale loads
+
+	// access-ordered, eldest entry is the least recently used one
+	private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+	// per-thread view on the slab and copy buffer, so publishing from the cache allocates nothing
+	private final ThreadLocal<ByteBuffer> slabViews = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ResourceCache.this.slab.duplicate();
+		}
+	};
+	private final ThreadLocal<byte[]> writeBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BLOCK_SIZE];
+		}
+	};
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong uncacheables = new AtomicLong(); // fetches of files too large to be cached
+	private final AtomicLong evictions = new AtomicLong();
+
+	ResourceCache() {
+		this(Long.getLong("filetrs.cache.budget", DEFAULT_MEMORY_BUDGET).longValue(),
+			Integer.getInteger("filetrs.cache.maxEntrySize", DEFAULT_MAX_ENTRY_SIZE).intValue());
+	}
+
+	ResourceCache(long memoryBudget, int maxEntrySize) {
+		int blockCount = (int) (Math.max(0, Math.min(memoryBudget, Integer.MAX_VALUE)) / BLOCK_SIZE);
+		this.memoryBudget = (long) blockCount * BLOCK_SIZE;
+		this.maxEntrySize = (int) Math.min(maxEntrySize, this.memoryBudget);
+		this.slab = ByteBuffer.allocateDirect(blockCount * BLOCK_SIZE);
+		this.freeBlocks = new int[blockCount];
+		for (int i = 0; i < blockCount; i++) {
+			this.freeBlocks[i] = blockCount-1-i;
+		}
+		this.freeCount = blockCount;
+	}
+
+	public synchronized void clear() {
+		this.version++;
+		for (Entry entry : this.entries.values()) {
+			unmap(entry);
+		}
+		this.entries.clear();
+	}
+
+	/**
+	 * Returns the pinned entry for the given key, if cached for the given ETag.
+	 * An entry cached for another ETag (or for none) is stale and dropped.
+	 * Misses are only counted by load(), for files which could be cached.
+	 */
+	public synchronized Entry get(String key, String eTag) {
+		Entry entry = this.entries.get(key);
+		if (entry == null) return null;
+		if (!entry.eTag.equals(eTag)) {
+			this.entries.remove(key);
+			unmap(entry);
+			return null;
+		}
+		this.hits.incrementAndGet();
+		entry.pins++;
+		return entry;
+	}
+
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public double getHitRate() {
+		long h = this.hits.get();
+		long total = h + this.misses.get();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+
+	public long getMemoryBudget() {
+		return this.memoryBudget;
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	public long getUncacheableCount() {
+		return this.uncacheables.get();
+	}
+
+	public synchronized long getUsedMemory() {
+		return this.memoryBudget - (long) this.freeCount * BLOCK_SIZE;
+	}
+
+	// to be taken before reading the file attributes passed to load()
+	public synchronized long getVersion() {
+		return this.version;
+	}
+
+	public synchronized void invalidate(String key) {
+		this.version++;
+		Entry entry = this.entries.remove(key);
+		if (entry != null) {
+			unmap(entry);
+		}
+	}
+
+	/**
+	 * Loads the given file into the cache if small enough, with the size and ETag
+	 * already read by the caller after taking loadVersion. Returns the pinned entry,
+	 * or null if the file cannot be cached (too large, changed size, no room left).
+	 */
+	public Entry load(String key, File file, long length, String eTag, long loadVersion) throws IOException {
+		if (this.memoryBudget == 0 || length > this.maxEntrySize) {
+			this.uncacheables.incrementAndGet();
+			return null;
+		}
+		this.misses.incrementAndGet();
+		int needed = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		Entry entry;
+		synchronized (this) {
+			if (!reserve(needed)) return null; // all in use by readers
+			int[] blocks = new int[needed];
+			for (int i = 0; i < needed; i++) {
+				blocks[i] = this.freeBlocks[--this.freeCount];
+			}
+			entry = new Entry(blocks, (int) length, eTag);
+			entry.pins = 1;
+		}
+		boolean loaded = false;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			FileChannel channel = in.getChannel();
+			ByteBuffer view = this.slabViews.get();
+			view.clear();
+			int remaining = entry.length;
+			for (int block : entry.blocks) {
+				int start = block * BLOCK_SIZE;
+				view.limit(start + Math.min(remaining, BLOCK_SIZE));
+				view.position(start);
+				while (view.hasRemaining()) {
+					if (channel.read(view) < 0) break;
+				}
+				remaining -= view.position() - start;
+				view.clear();
+			}
+			loaded = remaining == 0 && channel.size() == length; // otherwise changed meanwhile
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+			if (!loaded) {
+				release(entry);
+			}
+		}
+		if (!loaded) return null;
+		synchronized (this) {
+			if (loadVersion == this.version) { // no invalidation raced with the load
+				Entry previous = this.entries.put(key, entry);
+				entry.mapped = true;
+				if (previous != null) {
+					unmap(previous);
+				}
+			}
+		}
+		return entry;
+	}
+
+	public synchronized void release(Entry entry) {
+		entry.pins--;
+		if (entry.pins == 0 && !entry.mapped) {
+			freeBlocks(entry);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + this.hits.get() + " misses=" + this.misses.get()
+			+ " uncacheable=" + this.uncacheables.get() + " evictions=" + this.evictions.get()
+			+ " hitRate=" + getHitRate()
+			+ " used=" + getUsedMemory() + "/" + this.memoryBudget;
+	}
+
+	// entry must be pinned
+	public void write(Entry entry, OutputStream output) throws IOException {
+		ByteBuffer view = this.slabViews.get();
+		byte[] buffer = this.writeBuffers.get();
+		view.clear();
+		int remaining = entry.length;
+		for (int block : entry.blocks) {
+			int length = Math.min(remaining, BLOCK_SIZE);
+			view.position(block * BLOCK_SIZE);
+			view.get(buffer, 0, length);
+			output.write(buffer, 0, length);
+			remaining -= length;
+		}
+	}
+
+	private void freeBlocks(Entry entry) {
+		for (int block : entry.blocks) {
+			this.freeBlocks[this.freeCount++] = block;
+		}
+	}
+
+	// evicts least recently used entries until enough blocks are free
+	private boolean reserve(int needed) {
+		Iterator<Map.Entry<String,Entry>> iterator = this.entries.entrySet().iterator();
+		while (this.freeCount < needed) {
+			if (!iterator.hasNext()) return false;
+			Entry eldest = iterator.next().getValue();
+			iterator.remove();
+			unmap(eldest); // blocks of pinned entries come back on release
+			this.evictions.incrementAndGet();
+		}
+		return true;
+	}
+
+	private void unmap(Entry entry) {
+		entry.mapped = false;
+		if (entry.pins == 0) {
+			freeBlocks(entry);
+		}
+	}
+}
@@ -22,12 +22,15 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.FileSystemException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 
 public class TrackedFileSet {
 
@@ -118,11 +121,11 @@ public class TrackedFileSet {
 	static class State {
 		public static State restore() {
 			State restoredState = new State();
-		    restoredState.fileMap = Collections.<String,String>emptyMap();
+		    restoredState.fileMap = new PartitionedFileMap();
 		    restoredState.events = Collections.<Event>emptyList();
 			
 			BufferedReader br = null;
-			Map<String,String> restoredFiles = new HashMap<String,String>(3);
+			PartitionedFileMap restoredFiles = new PartitionedFileMap();
 			List<Event> restoredEvents = new ArrayList<Event>();
 		    try {
 				br = new BufferedReader(new FileReader(FILEMAP));
@@ -157,7 +160,7 @@ public class TrackedFileSet {
 		    }
 			return restoredState;
 		}
-		private Map<String,String> fileMap;
+		private PartitionedFileMap fileMap;
 		private List<Event> events;
 		
 		private String eTag;
@@ -174,7 +177,7 @@ public class TrackedFileSet {
 			return this.events;
 		}
 		
-		public Map<String, String> getFileMap() {
+		public PartitionedFileMap getFileMap() {
 			return this.fileMap;
 		}
 		
@@ -210,11 +213,28 @@ public class TrackedFileSet {
 			this.events = events;
 		}
 		
-		public void setFileMap(Map<String, String> fileMap) {
+		public void setFileMap(PartitionedFileMap fileMap) {
 			this.fileMap = fileMap;
 		}
 	}
 
+	// Resource to publish, with the ETag of the content that will be served
+	static class Resource {
+		final File file;
+		final String eTag;
+		final ResourceCache.Entry cached; // null if served from disk
+		
+		Resource(File file, String eTag, ResourceCache.Entry cached) {
+			this.file = file;
+			this.eTag = eTag;
+			this.cached = cached;
+		}
+		
+		public String getETag() {
+			return this.eTag;
+		}
+	}
+
 	private static boolean DEBUG = true;
 	
 	protected static final File RESOURCE_ROOT_FOLDER = new File("resources");
@@ -225,6 +245,17 @@ public class TrackedFileSet {
 	protected static final Charset UTF8 = Charset.forName("UTF-8");
 	private static final long WEEK_DURATION = 7*24*60*60*1000; // week duration in ms
 
+	private static String cacheKey(File file) {
+		return file.getPath().replace("\\","/"); // same as file map keys
+	}
+	private static void trimChangeEvents(List<Event> events, long now) {
+		int length = events.size();
+		if (length > 500) { 		// trim older ones if the queue is getting long (older than one week)
+			for (int last = length-1; events.get(last).timestamp < now-WEEK_DURATION; last--) {
+				events.remove(last);
+			}
+		}
+	}
 	private static void collectFiles(File folder, Map<String,String> filemap) throws IOException {
 		if (folder.isDirectory()) {
 			for (File file : folder.listFiles()) {
@@ -243,12 +274,20 @@ public class TrackedFileSet {
 	// thread for reconciling with file system in background
 	private Thread reconcilerThread;
 	
-	boolean reconcilerStopped = false;
+	volatile boolean reconcilerStopped = false;
 	
 	final Object reconcilerLock = new Object();
 	
 	private State currentState;
 	
+	// off-heap contents of small hot resources, invalidated by the reconciler
+	final ResourceCache resourceCache = new ResourceCache();
+	
+	// diffs file maps on reconcile, in parallel for large maps
+	final FileMapDiffer fileMapDiffer = new FileMapDiffer();
+	
+	final EventIdGenerator eventIdGenerator = new EventIdGenerator();
+	
     TrackedFileSet() {
 		this.currentState = State.restore();
 		startReconciling();
@@ -257,6 +296,7 @@ public class TrackedFileSet {
 	public void deleteResource(String resourceLocation) throws IOException {
 		File file = new File(RESOURCE_ROOT_FOLDER + resourceLocation);
 		boolean ok = file.delete();
+		this.resourceCache.invalidate(cacheKey(file)); // after delete, so a concurrent load cannot be kept
 		if (!ok) throw new IOException("Unable to delete existing resource: "+ resourceLocation);
 	}
 	
@@ -265,6 +305,42 @@ public class TrackedFileSet {
     	return this.currentState.getETag();
     }
 	
+	/**
+	 * Returns the resource to publish, or null if not found; to be released once published.
+	 * Small resources are served from the cache as long as they match the reconciled file map,
+	 * unless reconciling is stopped (then nothing would invalidate them).
+	 */
+	public Resource getResource(String resourceLocation) throws IOException {
+		File file = new File(RESOURCE_ROOT_FOLDER + resourceLocation);
+		String key = cacheKey(file);
+		boolean useCache = !this.reconcilerStopped;
+		String reconciledETag = null;
+		long cacheVersion = 0;
+		if (useCache) {
+			reconciledETag = this.currentState.getFileMap().get(key);
+			ResourceCache.Entry entry = this.resourceCache.get(key, reconciledETag);
+			if (entry != null) return new Resource(file, entry.eTag, entry);
+			cacheVersion = this.resourceCache.getVersion(); // before reading attributes
+		}
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (FileSystemException e) {
+			return null; // missing or not reachable, as File.exists()
+		}
+		if (!attributes.isRegularFile()) return null;
+		String eTag = String.valueOf(attributes.lastModifiedTime().toMillis()); // same as file map
+		if (useCache && eTag.equals(reconciledETag)) { // otherwise not reconciled yet
+			ResourceCache.Entry entry = this.resourceCache.load(key, file, attributes.size(), eTag, cacheVersion);
+			if (entry != null) return new Resource(file, entry.eTag, entry);
+		}
+		return new Resource(file, eTag, null);
+	}
+	
+	public ResourceCache getResourceCache() {
+		return this.resourceCache;
+	}
+	
 	public String getResourceURL(String rootServerURL, String resourceName) throws UnsupportedEncodingException {
 		StringBuilder sb = new StringBuilder(10);
 		sb.append(rootServerURL);
@@ -347,9 +423,22 @@ public class TrackedFileSet {
 	}
 		
 	public boolean publishResource(String resourceLocation, OutputStream output) throws IOException {
-		
-		File file = new File(RESOURCE_ROOT_FOLDER + resourceLocation);
-		if (!file.exists()) return false;
+		Resource resource = getResource(resourceLocation);
+		if (resource == null) return false;
+		try {
+			publishResource(resource, output);
+		} finally {
+			releaseResource(resource);
+		}
+		return true;
+	}
+	
+	public void publishResource(Resource resource, OutputStream output) throws IOException {
+		if (resource.cached != null) { // small enough to be served from memory
+			this.resourceCache.write(resource.cached, output);
+			return;
+		}
+		File file = resource.file;
 	    int buflen = 8192;
 	    byte[] buffer = new byte[buflen];
 	    InputStream in = null;
@@ -372,45 +461,40 @@ public class TrackedFileSet {
 	    		}
 	    	}
 	    }
-	    return true;
 	}
 	
-	private State reconcileChanges(State currentState, Map<String,String> newfiles) throws IOException {
-		Map<String,String> oldfiles = currentState.getFileMap();
-		List<Event> oldEvents = currentState.getEvents();
-		List<Event> updatedEvents = null;
-		Map<String,String> remainingNewFiles = new HashMap<String,String>(newfiles);
-		for (Map.Entry<String,String> oldentry : oldfiles.entrySet()) {
-			remainingNewFiles.remove(oldentry.getKey());
-			String oldfileEtag = oldentry.getValue();
-			String newfileEtag = newfiles.get(oldentry.getKey());
-			if (newfileEtag == null) {
-				if (updatedEvents == null) { // copy since could be iterated by publish in parallel
-					updatedEvents = new ArrayList<Event>(oldEvents); 
-				}
-				recordChangeEvent(updatedEvents, EventType.REMOVED, oldentry.getKey());
-				continue;
-			}
-			if (!oldfileEtag.equals(newfileEtag)) {
-				if (updatedEvents == null) { // copy since could be iterated by publish in parallel
-					updatedEvents = new ArrayList<Event>(oldEvents); 
-				}
-				recordChangeEvent(updatedEvents, EventType.MODIFIED, oldentry.getKey());
-			}
+	private State reconcileChanges(State currentState, PartitionedFileMap newfiles) throws IOException {
+		List<FileMapDiffer.Change> changes;
+		try {
+			changes = this.fileMapDiffer.diff(currentState.getFileMap(), newfiles);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt(); // keep the interrupt visible to the reconciler
+			throw new IOException("Interrupted while diffing file maps", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to diff file maps", e.getCause());
 		}
-		for (Map.Entry<String,String> remainingNewEntry : remainingNewFiles.entrySet()) {
-			if (updatedEvents == null) { // copy since could be iterated by publish in parallel
-				updatedEvents = new ArrayList<Event>(oldEvents); 
-			}
-			recordChangeEvent(updatedEvents, EventType.ADDED, remainingNewEntry.getKey());
+		if (changes.isEmpty()) {
+			return currentState; // no change
 		}
-		if (updatedEvents != null) {
-			State newState = new State();
-			newState.setEvents(updatedEvents);
-			newState.setFileMap(newfiles);
-			return newState; // found changes
+		long now = System.currentTimeMillis();
+		Event[] newEvents = new Event[changes.size()];
+		for (int i = 0; i < newEvents.length; i++) { // ids increase in detection order
+			FileMapDiffer.Change change = changes.get(i);
+			newEvents[i] = new Event(change.type, change.resourceName, this.eventIdGenerator.next(), now);
+			this.resourceCache.invalidate(change.resourceName);
+		}
+		List<Event> oldEvents = currentState.getEvents();
+		// copy since could be iterated by publish in parallel
+		List<Event> updatedEvents = new ArrayList<Event>(newEvents.length + oldEvents.size());
+		for (int i = newEvents.length-1; i >= 0; i--) {
+			updatedEvents.add(newEvents[i]); // most recent first
 		}
-		return currentState; // no change
+		updatedEvents.addAll(oldEvents);
+		trimChangeEvents(updatedEvents, now);
+		State newState = new State();
+		newState.setEvents(updatedEvents);
+		newState.setFileMap(newfiles);
+		return newState; // found changes
 	}	
 
 	public void reconcileLoop() {
@@ -430,7 +514,7 @@ public class TrackedFileSet {
 		while (!this.reconcilerStopped) {
 			try {
 				State oldState = this.currentState;
-				Map<String, String> newfilemap = new HashMap<String, String>(oldState.getFileMap().size());
+				PartitionedFileMap newfilemap = new PartitionedFileMap(oldState.getFileMap().size());
 				collectFiles(RESOURCE_ROOT_FOLDER, newfilemap);
 				State newState = reconcileChanges(this.currentState, newfilemap);
 				if (newState != oldState) {
@@ -442,6 +526,7 @@ public class TrackedFileSet {
 							publishChangeLog("http://localhost/tfs", System.out);
 							System.out.println("========TRS:Base (#"+iteration+")=========");
 							publishBase("http://localhost/tfs", System.out);
+							System.out.println("Resource cache: "+this.resourceCache);
 						} catch(IOException e) {
 							//ignore
 						}
@@ -455,17 +540,10 @@ public class TrackedFileSet {
 		}
 	}	
 	
-	public Event recordChangeEvent(List<Event> events, EventType eventType, String resourceName) {
-		long now = System.currentTimeMillis();
-		Event event = new Event(eventType, resourceName, UUID.randomUUID().toString(), now);
-		events.add(0, event); // most recent first
-		int length = events.size();
-		if (length > 500) { 		// trim older ones if the queue is getting long (older than one week)
-			for (int last = length-1; events.get(last).timestamp < now-WEEK_DURATION; last--) {
-				events.remove(last);
-			}
+	public void releaseResource(Resource resource) {
+		if (resource.cached != null) {
+			this.resourceCache.release(resource.cached);
 		}
-		return event;
 	}
 	
 	public void startReconciling() {
@@ -488,12 +566,14 @@ public class TrackedFileSet {
 	public void stopReconciling() {
 		synchronized (this.reconcilerLock) {
 			this.reconcilerStopped = true; // reconciling loop will exit
+			this.resourceCache.clear(); // no longer invalidated on changes, resources are served from disk
 			try {
 				this.reconcilerThread.join(); // wait until it ends
 			} catch(InterruptedException e) {
 				// ignore
 			}
 			this.reconcilerThread = null;
+			this.fileMapDiffer.shutdown();
 		}
 	}
 
@@ -529,6 +609,8 @@ public class TrackedFileSet {
 	    			// ignore
 	    		}
 	    	}
+	    	// once written, so a load racing with the write cannot be kept
+	    	this.resourceCache.invalidate(cacheKey(file));
 	    }
 	}
 }
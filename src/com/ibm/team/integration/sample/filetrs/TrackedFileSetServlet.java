@@ -29,6 +29,7 @@ public class TrackedFileSetServlet extends HttpServlet {
 	private static final String RESOURCES_PREFIX = "/resources/";
 	private static final String TRS = "/trs";
 	private static final String BASE = "/base";
+	private static final String CACHE = "/cache";
 	TrackedFileSet trackedFileSet = new TrackedFileSet();
 
     /**
@@ -76,10 +77,22 @@ public class TrackedFileSetServlet extends HttpServlet {
 			} else {
 				response.setContentType(TEXT_PLAIN);
 			}
-			boolean found = this.trackedFileSet.publishResource(resourcePath, response.getOutputStream());
-			if (!found) {
+			TrackedFileSet.Resource resource = this.trackedFileSet.getResource(resourcePath);
+			if (resource == null) {
 				response.getOutputStream().write(("Resource "+resourcePath+" not found in "+TrackedFileSet.RESOURCE_ROOT_FOLDER.getAbsolutePath()).getBytes(TrackedFileSet.UTF8));
 				response.setStatus(404); // not found
+				return;
+			}
+			try {
+				response.setHeader(ETAG, resource.getETag()); // tag of the content actually published, also on 304
+				String matchETag = request.getHeader(IF_NONE_MATCH);
+				if (resource.getETag().equals(matchETag)) {
+					response.setStatus(304); // not modified
+					return;
+				}
+				this.trackedFileSet.publishResource(resource, response.getOutputStream());
+			} finally {
+				this.trackedFileSet.releaseResource(resource);
 			}
 		} else if (pathInfo.equals(TRS)) {
 			String matchETag = request.getHeader(IF_NONE_MATCH);
@@ -97,6 +110,18 @@ public class TrackedFileSetServlet extends HttpServlet {
 			if (eTag != null) {
 				response.setHeader(ETAG, eTag);
 			}
+		} else if (pathInfo.equals(CACHE)) {
+			response.setContentType(TEXT_PLAIN);
+			response.setCharacterEncoding(TrackedFileSet.UTF8.name());
+			ResourceCache cache = this.trackedFileSet.getResourceCache();
+			response.getOutputStream().write(
+					("hits: " + cache.getHitCount() + "\n" +
+					"misses: " + cache.getMissCount() + "\n" +
+					"uncacheable: " + cache.getUncacheableCount() + "\n" +
+					"evictions: " + cache.getEvictionCount() + "\n" +
+					"hitRate: " + cache.getHitRate() + "\n" +
+					"usedMemory: " + cache.getUsedMemory() + "\n" +
+					"memoryBudget: " + cache.getMemoryBudget() + "\n").getBytes(TrackedFileSet.UTF8));
 		} else if (pathInfo.equals(BASE)) {
 			response.setContentType(TURTLE);
 			response.setCharacterEncoding(TrackedFileSet.UTF8.name());